@@ -0,0 +1,249 @@
+import jeigen.DenseMatrix;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+
+// Holds the state of many plant/observer/controller instances that share one model
+// in a single off-heap arena, laid out as [x | xhat | r | u | y], each region
+// num_instances_ consecutive vectors long.
+public class FleetStateStore {
+    public int num_instances_;
+    public int kNumInputs;
+    public int kNumStates;
+    public int kNumOutputs;
+
+    // Model, row-major
+    double[] A_;
+    double[] B_;
+    double[] C_;
+    double[] L_;
+    double[] K_;
+    double[] Kff_;
+    double[] controller_A_;
+    double[] u_min_;
+    double[] u_max_;
+
+    DoubleBuffer arena_;
+    int x_offset_;
+    int xhat_offset_;
+    int r_offset_;
+    int u_offset_;
+    int y_offset_;
+
+    // Scratch reused across instances so the kernels don't allocate
+    double[] scratch_state_;
+    double[] scratch_output_;
+
+    public FleetStateStore(StateSpacePlant model, int num_instances) {
+        num_instances_ = num_instances;
+        kNumStates = model.A_.rows;
+        kNumInputs = model.B_.cols;
+        kNumOutputs = model.C_.rows;
+
+        A_ = Flatten(model.A_);
+        B_ = Flatten(model.B_);
+        C_ = Flatten(model.C_);
+        L_ = new double[kNumStates * kNumOutputs];
+        K_ = new double[kNumInputs * kNumStates];
+        Kff_ = new double[kNumInputs * kNumStates];
+        controller_A_ = Flatten(DenseMatrix.eye(kNumStates));
+        u_min_ = new double[kNumInputs];
+        u_max_ = new double[kNumInputs];
+        Arrays.fill(u_min_, Double.NEGATIVE_INFINITY);
+        Arrays.fill(u_max_, Double.POSITIVE_INFINITY);
+
+        x_offset_ = 0;
+        xhat_offset_ = x_offset_ + num_instances * kNumStates;
+        r_offset_ = xhat_offset_ + num_instances * kNumStates;
+        u_offset_ = r_offset_ + num_instances * kNumStates;
+        y_offset_ = u_offset_ + num_instances * kNumInputs;
+        arena_ = AllocateArena(y_offset_ + num_instances * kNumOutputs);
+
+        scratch_state_ = new double[kNumStates];
+        scratch_output_ = new double[kNumOutputs];
+
+        for (int i = 0; i < num_instances; i++) {
+            SetState(i, model.x_);
+            SetEstimate(i, model.x_);
+        }
+    }
+
+    public void SetObserverGain(DenseMatrix L) {
+        L_ = Flatten(L);
+    }
+
+    public void SetController(StateSpaceController controller) {
+        K_ = Flatten(controller.K_);
+        Kff_ = Flatten(controller.Kff_);
+        controller_A_ = Flatten(controller.A_);
+        u_min_ = Flatten(controller.u_min_);
+        u_max_ = Flatten(controller.u_max_);
+    }
+
+    public double GetState(int instance, int i) {
+        return arena_.get(x_offset_ + instance * kNumStates + i);
+    }
+
+    public double GetEstimate(int instance, int i) {
+        return arena_.get(xhat_offset_ + instance * kNumStates + i);
+    }
+
+    public double GetReference(int instance, int i) {
+        return arena_.get(r_offset_ + instance * kNumStates + i);
+    }
+
+    public double GetInput(int instance, int i) {
+        return arena_.get(u_offset_ + instance * kNumInputs + i);
+    }
+
+    public double GetOutput(int instance, int i) {
+        return arena_.get(y_offset_ + instance * kNumOutputs + i);
+    }
+
+    public void SetState(int instance, DenseMatrix x) {
+        Put(x_offset_ + instance * kNumStates, x);
+    }
+
+    public void SetEstimate(int instance, DenseMatrix xhat) {
+        Put(xhat_offset_ + instance * kNumStates, xhat);
+    }
+
+    public void SetReference(int instance, DenseMatrix r) {
+        Put(r_offset_ + instance * kNumStates, r);
+    }
+
+    public void SetInput(int instance, DenseMatrix u) {
+        Put(u_offset_ + instance * kNumInputs, u);
+    }
+
+    // u = K * (r - xhat) + Kff * (r - A * r), capped to [u_min, u_max]
+    public void UpdateControllers() {
+        for (int n = 0; n < num_instances_; n++) {
+            int xhat = xhat_offset_ + n * kNumStates;
+            int r = r_offset_ + n * kNumStates;
+            int u = u_offset_ + n * kNumInputs;
+
+            MulVec(controller_A_, kNumStates, kNumStates, r, scratch_state_);
+            for (int i = 0; i < kNumInputs; i++) {
+                double sum = 0.;
+                for (int j = 0; j < kNumStates; j++) {
+                    double r_j = arena_.get(r + j);
+                    sum += K_[i * kNumStates + j] * (r_j - arena_.get(xhat + j)) +
+                            Kff_[i * kNumStates + j] * (r_j - scratch_state_[j]);
+                }
+                arena_.put(u + i, MathUtils.Cap(sum, u_min_[i], u_max_[i]));
+            }
+        }
+    }
+
+    // x(n+1) = A*x(n) + B*u(n), then y = C*x(n+1)
+    public void UpdatePlants() {
+        for (int n = 0; n < num_instances_; n++) {
+            int x = x_offset_ + n * kNumStates;
+            Predict(x, u_offset_ + n * kNumInputs);
+
+            int y = y_offset_ + n * kNumOutputs;
+            MulVec(C_, kNumOutputs, kNumStates, x, scratch_output_);
+            for (int k = 0; k < kNumOutputs; k++) {
+                arena_.put(y + k, scratch_output_[k]);
+            }
+        }
+    }
+
+    // xhat_post(n) = xhat(n) + L * (y(n) - C*xhat(n))
+    // xhat(n+1) = A*xhat_post(n) + B*u(n)
+    public void UpdateObservers() {
+        for (int n = 0; n < num_instances_; n++) {
+            int xhat = xhat_offset_ + n * kNumStates;
+            int y = y_offset_ + n * kNumOutputs;
+
+            MulVec(C_, kNumOutputs, kNumStates, xhat, scratch_output_);
+            for (int k = 0; k < kNumOutputs; k++) {
+                scratch_output_[k] = arena_.get(y + k) - scratch_output_[k];
+            }
+            for (int i = 0; i < kNumStates; i++) {
+                double sum = arena_.get(xhat + i);
+                for (int k = 0; k < kNumOutputs; k++) {
+                    sum += L_[i * kNumOutputs + k] * scratch_output_[k];
+                }
+                arena_.put(xhat + i, sum);
+            }
+
+            Predict(xhat, u_offset_ + n * kNumInputs);
+        }
+    }
+
+    // Bulk copy of the whole arena, for checkpointing
+    public DoubleBuffer Snapshot() {
+        DoubleBuffer snapshot = AllocateArena(arena_.capacity());
+        Snapshot(snapshot);
+        return snapshot;
+    }
+
+    public void Snapshot(DoubleBuffer snapshot) {
+        CheckSnapshotSize(snapshot);
+        snapshot.clear();
+        snapshot.put(arena_.duplicate().clear());
+        snapshot.clear();
+    }
+
+    public void Restore(DoubleBuffer snapshot) {
+        CheckSnapshotSize(snapshot);
+        arena_.clear();
+        arena_.put(snapshot.duplicate().clear());
+        arena_.clear();
+    }
+
+    // A snapshot from a differently sized store would only copy a prefix
+    private void CheckSnapshotSize(DoubleBuffer snapshot) {
+        if (snapshot.capacity() != arena_.capacity()) {
+            throw new IllegalArgumentException("Snapshot holds " + snapshot.capacity() +
+                    " values but the store holds " + arena_.capacity());
+        }
+    }
+
+    private void Predict(int x, int u) {
+        MulVec(A_, kNumStates, kNumStates, x, scratch_state_);
+        for (int i = 0; i < kNumStates; i++) {
+            double sum = scratch_state_[i];
+            for (int j = 0; j < kNumInputs; j++) {
+                sum += B_[i * kNumInputs + j] * arena_.get(u + j);
+            }
+            arena_.put(x + i, sum);
+        }
+    }
+
+    private void MulVec(double[] M, int rows, int cols, int v, double[] ret) {
+        for (int i = 0; i < rows; i++) {
+            double sum = 0.;
+            for (int j = 0; j < cols; j++) {
+                sum += M[i * cols + j] * arena_.get(v + j);
+            }
+            ret[i] = sum;
+        }
+    }
+
+    private void Put(int offset, DenseMatrix v) {
+        for (int i = 0; i < v.rows; i++) {
+            arena_.put(offset + i, v.get(i, 0));
+        }
+    }
+
+    private static DoubleBuffer AllocateArena(int size) {
+        return ByteBuffer.allocateDirect(size * Double.BYTES)
+                .order(ByteOrder.nativeOrder())
+                .asDoubleBuffer();
+    }
+
+    private static double[] Flatten(DenseMatrix M) {
+        double[] ret = new double[M.rows * M.cols];
+        for (int i = 0; i < M.rows; i++) {
+            for (int j = 0; j < M.cols; j++) {
+                ret[i * M.cols + j] = M.get(i, j);
+            }
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,56 @@
+import jeigen.DenseMatrix;
+
+// Runs the float paths next to their double counterparts and reports the largest
+// absolute difference, to check a model stays within tolerance in float mode
+public class FloatDriftChecker {
+
+    // Max over all steps, instances and states of |x_float - x_double|
+    public static double PlantDrift(StateSpacePlant model, DenseMatrix[] x_0, DenseMatrix[] u,
+                                    int num_steps, boolean accumulate_double) {
+        FleetStateStore reference = new FleetStateStore(model, x_0.length);
+        FloatPlantBatch batch = new FloatPlantBatch(model, x_0.length, accumulate_double);
+        for (int n = 0; n < x_0.length; n++) {
+            reference.SetState(n, x_0[n]);
+            reference.SetInput(n, u[n]);
+            batch.SetState(n, x_0[n]);
+            batch.SetInput(n, u[n]);
+        }
+
+        double drift = 0.;
+        for (int t = 0; t < num_steps; t++) {
+            reference.UpdatePlants();
+            batch.UpdatePlants();
+            for (int n = 0; n < x_0.length; n++) {
+                for (int i = 0; i < reference.kNumStates; i++) {
+                    drift = Math.max(drift,
+                            Math.abs(batch.GetState(n, i) - reference.GetState(n, i)));
+                }
+            }
+        }
+        return drift;
+    }
+
+    // Max over all samples of the position and velocity error against Calculate
+    public static double ProfileDrift(TrapezodialMotionProfile profile, float[] times,
+                                      boolean accumulate_double) {
+        float[] positions = new float[times.length];
+        float[] velocities = new float[times.length];
+        profile.Sample(times, positions, velocities, accumulate_double);
+
+        double drift = 0.;
+        for (int i = 0; i < times.length; i++) {
+            MotionProfilePosition expected = profile.Calculate(times[i]);
+            drift = Math.max(drift, Math.abs(positions[i] - expected.position));
+            drift = Math.max(drift, Math.abs(velocities[i] - expected.velocity));
+        }
+        return drift;
+    }
+
+    public static float[] SampleTimes(TrapezodialMotionProfile profile, double dt) {
+        float[] times = new float[(int) (profile.total_time() / dt) + 1];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = (float) (i * dt);
+        }
+        return times;
+    }
+}
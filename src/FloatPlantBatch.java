@@ -0,0 +1,126 @@
+import jeigen.DenseMatrix;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+// Single precision counterpart to the plant side of FleetStateStore, for batch
+// runs that are limited by memory bandwidth. State is stored as float, laid out
+// as [x | u | y]; the products can optionally be accumulated in double.
+public class FloatPlantBatch {
+    public int num_instances_;
+    public int kNumInputs;
+    public int kNumStates;
+    public int kNumOutputs;
+    public boolean accumulate_double_;
+
+    // Model, row-major
+    float[] A_;
+    float[] B_;
+    float[] C_;
+
+    FloatBuffer arena_;
+    int x_offset_;
+    int u_offset_;
+    int y_offset_;
+
+    float[] scratch_state_;
+
+    public FloatPlantBatch(StateSpacePlant model, int num_instances, boolean accumulate_double) {
+        num_instances_ = num_instances;
+        kNumStates = model.A_.rows;
+        kNumInputs = model.B_.cols;
+        kNumOutputs = model.C_.rows;
+        accumulate_double_ = accumulate_double;
+
+        A_ = Flatten(model.A_);
+        B_ = Flatten(model.B_);
+        C_ = Flatten(model.C_);
+
+        x_offset_ = 0;
+        u_offset_ = x_offset_ + num_instances * kNumStates;
+        y_offset_ = u_offset_ + num_instances * kNumInputs;
+        arena_ = ByteBuffer.allocateDirect((y_offset_ + num_instances * kNumOutputs) * Float.BYTES)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+
+        scratch_state_ = new float[kNumStates];
+
+        for (int i = 0; i < num_instances; i++) {
+            SetState(i, model.x_);
+        }
+    }
+
+    public double GetState(int instance, int i) {
+        return arena_.get(x_offset_ + instance * kNumStates + i);
+    }
+
+    public double GetOutput(int instance, int i) {
+        return arena_.get(y_offset_ + instance * kNumOutputs + i);
+    }
+
+    public void SetState(int instance, DenseMatrix x) {
+        Put(x_offset_ + instance * kNumStates, x);
+    }
+
+    public void SetInput(int instance, DenseMatrix u) {
+        Put(u_offset_ + instance * kNumInputs, u);
+    }
+
+    // x(n+1) = A*x(n) + B*u(n), then y = C*x(n+1)
+    public void UpdatePlants() {
+        for (int n = 0; n < num_instances_; n++) {
+            int x = x_offset_ + n * kNumStates;
+            int u = u_offset_ + n * kNumInputs;
+            int y = y_offset_ + n * kNumOutputs;
+
+            for (int i = 0; i < kNumStates; i++) {
+                double sum = 0.;
+                for (int j = 0; j < kNumStates; j++) {
+                    sum = Accumulate(sum, (double) A_[i * kNumStates + j] * arena_.get(x + j));
+                }
+                for (int j = 0; j < kNumInputs; j++) {
+                    sum = Accumulate(sum, (double) B_[i * kNumInputs + j] * arena_.get(u + j));
+                }
+                scratch_state_[i] = (float) sum;
+            }
+            for (int i = 0; i < kNumStates; i++) {
+                arena_.put(x + i, scratch_state_[i]);
+            }
+
+            for (int k = 0; k < kNumOutputs; k++) {
+                double sum = 0.;
+                for (int j = 0; j < kNumStates; j++) {
+                    sum = Accumulate(sum, (double) C_[k * kNumStates + j] * arena_.get(x + j));
+                }
+                arena_.put(y + k, (float) sum);
+            }
+        }
+    }
+
+    // The product of two floats is exact in double, and rounding a double sum of
+    // two floats gives the float sum, so rounding here reproduces float arithmetic
+    // exactly. accumulate_double_ is loop invariant, the JIT hoists the check.
+    private double Accumulate(double sum, double product) {
+        if (accumulate_double_) {
+            return sum + product;
+        }
+        return (float) (sum + (float) product);
+    }
+
+    private void Put(int offset, DenseMatrix v) {
+        for (int i = 0; i < v.rows; i++) {
+            arena_.put(offset + i, (float) v.get(i, 0));
+        }
+    }
+
+    private static float[] Flatten(DenseMatrix M) {
+        float[] ret = new float[M.rows * M.cols];
+        for (int i = 0; i < M.rows; i++) {
+            for (int j = 0; j < M.cols; j++) {
+                ret[i * M.cols + j] = (float) M.get(i, j);
+            }
+        }
+        return ret;
+    }
+}
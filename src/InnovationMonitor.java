@@ -0,0 +1,367 @@
+import jeigen.DenseMatrix;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+// Tracks the innovation y - C*xhat of each output channel of an observer and flags
+// channels whose sensor looks faulty. Statistics are updated in place, nothing is
+// allocated per tick except when a channel changes state and a listener is set.
+public class InnovationMonitor {
+
+    public interface Listener {
+        void OnChannelFault(int channel, boolean faulty, double nis, double cusum);
+    }
+
+    public int kNumOutputs;
+
+    // Samples used to learn the innovation mean and variance of a channel when no
+    // nominal variance is given; no faults are raised before then. Learning only
+    // starts once the innovation has settled, see UpdateSettling.
+    public int warmup_ = 50;
+    // Forgetting factor of the running variance once past 1/variance_decay_
+    // samples, so the baseline follows slow changes in the sensor noise
+    public double variance_decay_ = 0.01;
+    // Relative resolution of the held mean: a bias from model error is only
+    // resolved to this fraction of itself, both when judging that the innovation
+    // has settled and as a floor on the learned standard deviation. Without it a
+    // noise free simulation never settles and then faults on its own round off.
+    public double bias_tolerance_ = 1e-3;
+    // Normalized innovation squared above this counts as an outlier (3 sigma)
+    public double nis_threshold_ = 9.;
+    // Consecutive outliers before a channel is faulty
+    public int outlier_ticks_ = 3;
+    // Consecutive inliers, seen while the channel is excluded, before a faulty
+    // channel is healthy again
+    public int recover_ticks_ = 20;
+    // Two sided CUSUM on the normalized innovation, for slow biases like a
+    // slipping encoder
+    public double cusum_drift_ = 0.5;
+    public double cusum_threshold_ = 8.;
+    // Scale on the innovation of a faulty channel, and of an outlier while another
+    // channel is healthy; 0 excludes it from the correction
+    public double faulty_weight_ = 0.;
+    // Opt in: given to the channel with the lowest NIS when every channel would
+    // be excluded at once, so a real disturbance can't leave the observer running
+    // blind. This lets a faulty sensor back into the estimate, so it is off by
+    // default and the observer coasts on the model instead.
+    public double fallback_weight_ = 0.;
+    // Opt in: a channel faulty for readmit_ticks_ is re-admitted at
+    // readmit_weight_ for up to probe_ticks_, retried every readmit_ticks_ until
+    // it recovers. This only happens while no other channel is healthy; a healthy
+    // channel keeps the estimate honest, so the faulty one recovers on its own if
+    // its sensor does.
+    public int readmit_ticks_ = 100;
+    public int probe_ticks_ = 50;
+    public double readmit_weight_ = 0.;
+
+    // Mean of the first warmup_ healthy innovations, then held so a slow drift
+    // shows up in the CUSUM instead of being learned, and the running variance
+    // about it, equally weighted for the first 1/variance_decay_ samples and
+    // exponentially forgetting after that
+    public long[] count_;
+    public double[] mean_;
+    double[] variance_;
+
+    // Used instead of the running variance when > 0
+    public double[] nominal_variance_;
+
+    public double[] innovation_;
+    public double[] nis_;
+    public double[] cusum_high_;
+    public double[] cusum_low_;
+    public boolean[] faulty_;
+    public double[] weight_;
+    int[] outliers_;
+    int[] inliers_;
+    int[] faulty_ticks_;
+    boolean[] outlier_;
+    boolean[] probing_;
+
+    // Settling detector, run before the baseline is learned
+    static final int kSettleBlockTicks = 100;
+    static final int kMaxSettleBlocks = 10;
+    boolean[] settled_;
+    int[] settle_ticks_;
+    int[] settle_blocks_;
+    double[] settle_sum_;
+    double[] settle_difference_sum_;
+    double[] settle_block_mean_;
+    double[] last_innovation_;
+
+    Listener listener_;
+    Executor executor_;
+
+    public InnovationMonitor(int kNumOutputs) {
+        this.kNumOutputs = kNumOutputs;
+        count_ = new long[kNumOutputs];
+        mean_ = new double[kNumOutputs];
+        variance_ = new double[kNumOutputs];
+        nominal_variance_ = new double[kNumOutputs];
+        innovation_ = new double[kNumOutputs];
+        nis_ = new double[kNumOutputs];
+        cusum_high_ = new double[kNumOutputs];
+        cusum_low_ = new double[kNumOutputs];
+        faulty_ = new boolean[kNumOutputs];
+        weight_ = new double[kNumOutputs];
+        outliers_ = new int[kNumOutputs];
+        inliers_ = new int[kNumOutputs];
+        faulty_ticks_ = new int[kNumOutputs];
+        outlier_ = new boolean[kNumOutputs];
+        probing_ = new boolean[kNumOutputs];
+        settled_ = new boolean[kNumOutputs];
+        settle_ticks_ = new int[kNumOutputs];
+        settle_blocks_ = new int[kNumOutputs];
+        settle_sum_ = new double[kNumOutputs];
+        settle_difference_sum_ = new double[kNumOutputs];
+        settle_block_mean_ = new double[kNumOutputs];
+        last_innovation_ = new double[kNumOutputs];
+        for (int k = 0; k < kNumOutputs; k++) {
+            weight_[k] = 1.;
+        }
+    }
+
+    // Fault transitions are reported on the executor so the control thread never
+    // runs listener code
+    public void SetListener(Listener listener, Executor executor) {
+        listener_ = listener;
+        executor_ = executor;
+    }
+
+    public double Variance(int k) {
+        return variance_[k];
+    }
+
+    public void Update(DenseMatrix innovation) {
+        boolean any_healthy = false;
+        for (int k = 0; k < kNumOutputs; k++) {
+            Update(k, innovation.get(k, 0));
+            any_healthy |= !faulty_[k] && !outlier_[k];
+        }
+
+        boolean any_admitted = false;
+        for (int k = 0; k < kNumOutputs; k++) {
+            // Another channel carries the estimate, so an unconfirmed outlier can
+            // be dropped outright rather than clipped
+            if (outlier_[k] && !faulty_[k] && any_healthy) {
+                weight_[k] = faulty_weight_;
+            }
+            probing_[k] = readmit_weight_ > 0. && faulty_[k] && !any_healthy &&
+                    faulty_ticks_[k] >= readmit_ticks_;
+            if (probing_[k]) {
+                weight_[k] = Math.max(faulty_weight_, readmit_weight_);
+            } else if (faulty_[k] && any_healthy) {
+                faulty_ticks_[k] = 0;
+            }
+            any_admitted |= weight_[k] > 0. && !probing_[k];
+        }
+
+        // Never run blind: fall back on the channel that agrees best with the
+        // estimate, which is the one least likely to be the broken sensor
+        if (fallback_weight_ > 0. && !any_admitted) {
+            int best = -1;
+            for (int k = 0; k < kNumOutputs; k++) {
+                if (Double.isFinite(innovation_[k]) && (best < 0 || nis_[k] < nis_[best])) {
+                    best = k;
+                }
+            }
+            if (best >= 0) {
+                weight_[best] = Math.max(weight_[best], fallback_weight_);
+            }
+        }
+    }
+
+    // Scales each channel of the innovation by its weight, in place
+    public void Apply(DenseMatrix innovation) {
+        for (int k = 0; k < kNumOutputs; k++) {
+            double e = innovation.get(k, 0);
+            innovation.set(k, 0, Double.isFinite(e) ? e * weight_[k] : 0.);
+        }
+    }
+
+    public boolean IsProbing(int k) {
+        return probing_[k];
+    }
+
+    public void Reset(int k) {
+        count_[k] = 0;
+        mean_[k] = 0.;
+        variance_[k] = 0.;
+        nis_[k] = 0.;
+        cusum_high_[k] = 0.;
+        cusum_low_[k] = 0.;
+        outliers_[k] = 0;
+        inliers_[k] = 0;
+        faulty_ticks_[k] = 0;
+        probing_[k] = false;
+        settled_[k] = false;
+        settle_ticks_[k] = 0;
+        settle_blocks_[k] = 0;
+        settle_sum_[k] = 0.;
+        settle_difference_sum_[k] = 0.;
+        weight_[k] = 1.;
+        SetFaulty(k, false);
+    }
+
+    private void Update(int k, double e) {
+        // Whether the estimate followed this sensor on the last tick, through a
+        // probe or the fallback; inliers then only show the estimate agreeing with
+        // the sensor, right or wrong, so they can't clear a fault
+        boolean followed = weight_[k] > faulty_weight_;
+
+        innovation_[k] = e;
+        outlier_[k] = false;
+        faulty_ticks_[k] = faulty_[k] ? faulty_ticks_[k] + 1 : 0;
+        if (faulty_ticks_[k] >= readmit_ticks_ + probe_ticks_) {
+            faulty_ticks_[k] = 0;
+        }
+
+        // A disconnected sensor often reads NaN/inf, which is a fault straight away
+        if (!Double.isFinite(e)) {
+            nis_[k] = Double.POSITIVE_INFINITY;
+            inliers_[k] = 0;
+            outlier_[k] = true;
+            faulty_ticks_[k] = 0;
+            weight_[k] = faulty_weight_;
+            SetFaulty(k, true);
+            return;
+        }
+
+        if (nominal_variance_[k] <= 0. && !settled_[k]) {
+            UpdateSettling(k, e);
+            weight_[k] = faulty_[k] ? faulty_weight_ : 1.;
+            return;
+        }
+
+        double variance = nominal_variance_[k] > 0. ? nominal_variance_[k] :
+                Math.max(Variance(k), Math.pow(bias_tolerance_ * mean_[k], 2));
+        boolean warm = nominal_variance_[k] > 0. || count_[k] >= warmup_;
+
+        if (!warm || variance <= 0.) {
+            weight_[k] = faulty_[k] ? faulty_weight_ : 1.;
+            AddSample(k, e);
+            return;
+        }
+
+        // While faulty the CUSUM restarts every tick, so recovery is judged on the
+        // current samples rather than on everything accumulated during the fault
+        if (faulty_[k]) {
+            cusum_high_[k] = 0.;
+            cusum_low_[k] = 0.;
+        }
+
+        // NIS and CUSUM share the centring, the held mean absorbs a constant bias
+        // from model error
+        double centre = nominal_variance_[k] > 0. ? 0. : mean_[k];
+        double z = (e - centre) / Math.sqrt(variance);
+        nis_[k] = z * z;
+        cusum_high_[k] = Math.max(0., cusum_high_[k] + z - cusum_drift_);
+        cusum_low_[k] = Math.max(0., cusum_low_[k] - z - cusum_drift_);
+        boolean outlier = nis_[k] > nis_threshold_ ||
+                Math.max(cusum_high_[k], cusum_low_[k]) > cusum_threshold_;
+        outlier_[k] = outlier;
+
+        if (outlier) {
+            inliers_[k] = 0;
+            outliers_[k]++;
+            if (outliers_[k] >= outlier_ticks_) {
+                SetFaulty(k, true);
+            }
+        } else {
+            outliers_[k] = 0;
+            inliers_[k] = faulty_[k] && followed ? 0 : inliers_[k] + 1;
+            if (faulty_[k] && inliers_[k] >= recover_ticks_) {
+                SetFaulty(k, false);
+            }
+        }
+
+        // Until the fault is confirmed an outlier is clipped to the NIS threshold
+        // about the centre, so a dead sensor can't drag the estimate far while a
+        // noise spike still corrects it about as usual. Dropping the spike when no
+        // other channel is healthy would leave the observer coasting on the model
+        // for a tick, which a model error turns into the next outlier; Update drops
+        // it when there is one.
+        if (faulty_[k]) {
+            weight_[k] = faulty_weight_;
+        } else if (outlier) {
+            double limit = Math.sqrt(nis_threshold_ * variance);
+            double clipped = centre + MathUtils.Cap(e - centre, -limit, limit);
+            weight_[k] = e != 0. ? clipped / e : 0.;
+        } else {
+            weight_[k] = 1.;
+        }
+
+        // Keep the baseline clean of samples from a faulty sensor
+        if (!faulty_[k] && !outlier) {
+            AddSample(k, e);
+        }
+    }
+
+    // The observer's initial convergence shows up as a smooth innovation that
+    // levels off, at zero or at a constant bias when the model is off. The
+    // innovation is averaged over blocks of kSettleBlockTicks, and the channel
+    // has settled once two blocks in a row agree within 3 standard errors.
+    // Successive differences cancel most of the smooth part, so half their mean
+    // square estimates the noise variance behind those standard errors. A channel
+    // that never looks settled, for instance with no noise at all, settles after
+    // kMaxSettleBlocks anyway.
+    private void UpdateSettling(int k, double e) {
+        if (settle_ticks_[k] > 0) {
+            double d = e - last_innovation_[k];
+            settle_difference_sum_[k] += d * d;
+        }
+        last_innovation_[k] = e;
+        settle_sum_[k] += e;
+        settle_ticks_[k]++;
+        if (settle_ticks_[k] < kSettleBlockTicks) {
+            return;
+        }
+
+        double block_mean = settle_sum_[k] / kSettleBlockTicks;
+        double noise_variance = settle_difference_sum_[k] / (2. * (kSettleBlockTicks - 1));
+        double standard_error = Math.sqrt(2. * noise_variance / kSettleBlockTicks);
+        double tolerance = 3. * standard_error + bias_tolerance_ * Math.abs(block_mean);
+        if (settle_blocks_[k] > 0 && Math.abs(block_mean - settle_block_mean_[k]) <= tolerance) {
+            settled_[k] = true;
+        }
+        settle_blocks_[k]++;
+        if (settle_blocks_[k] >= kMaxSettleBlocks) {
+            settled_[k] = true;
+        }
+
+        settle_block_mean_[k] = block_mean;
+        settle_sum_[k] = 0.;
+        settle_difference_sum_[k] = 0.;
+        settle_ticks_[k] = 0;
+    }
+
+    private void AddSample(int k, double e) {
+        count_[k]++;
+        double alpha = Math.max(1. / count_[k], variance_decay_);
+        double delta = e - mean_[k];
+        if (count_[k] <= warmup_) {
+            mean_[k] += alpha * delta;
+            variance_[k] = (1. - alpha) * (variance_[k] + alpha * delta * delta);
+        } else {
+            variance_[k] += alpha * (delta * delta - variance_[k]);
+        }
+    }
+
+    private void SetFaulty(int k, boolean faulty) {
+        if (faulty_[k] == faulty) {
+            return;
+        }
+        faulty_[k] = faulty;
+
+        if (listener_ != null && executor_ != null) {
+            Listener listener = listener_;
+            double nis = nis_[k];
+            double cusum = Math.max(cusum_high_[k], cusum_low_[k]);
+            try {
+                executor_.execute(() -> listener.OnChannelFault(k, faulty, nis, cusum));
+            } catch (RejectedExecutionException e) {
+                // Never let a full or shut down executor break the control loop,
+                // the notification is dropped
+            }
+        }
+    }
+}
@@ -99,4 +99,95 @@ public class MotionProfileTest {
         RunTest();
     }
 
+    private void RunTimeIndexTest() {
+        TrapezodialMotionProfile profile = new TrapezodialMotionProfile(constraints, goal,
+                initial_position);
+        MotionProfileTimeIndex index = new MotionProfileTimeIndex(profile);
+        double dt = 0.005;
+
+        int n = (int) (profile.total_time() / dt);
+        double[] targets = new double[n];
+        double[] times = new double[n];
+        for (int i = 0; i < n; i++) {
+            targets[i] = profile.Calculate(i * dt).position;
+        }
+        index.TimesAt(targets, times);
+
+        // Covers the accel, cruise and deccel segments
+        for (int i = 0; i < n; i++) {
+            Assert.assertEquals(profile.TimeLeftUntil(targets[i]), times[i], 1e-9);
+            Assert.assertEquals(i * dt, times[i], 1e-9);
+        }
+
+        double overshoot = 2 * goal.position - initial_position.position;
+        Assert.assertFalse(index.IsReachable(overshoot));
+        Assert.assertTrue(Double.isNaN(index.TimeAt(overshoot)));
+    }
+
+    @Test
+    public void TimeIndexPositiveGoal() {
+        initial_position = new MotionProfilePosition(0,0);
+        goal = new MotionProfilePosition(3, 0);
+        SetUp();
+        RunTimeIndexTest();
+    }
+
+    @Test
+    public void TimeIndexNegativeGoal() {
+        initial_position = new MotionProfilePosition(0,0);
+        goal = new MotionProfilePosition(-3, 0);
+        SetUp();
+        RunTimeIndexTest();
+    }
+
+    @Test
+    public void TimeIndexInitialVelocity() {
+        initial_position = new MotionProfilePosition(0,0.5);
+        goal = new MotionProfilePosition(3, 0);
+        SetUp();
+        RunTimeIndexTest();
+    }
+
+    @Test
+    public void TimeIndexBatch() {
+        initial_position = new MotionProfilePosition(0,0);
+        SetUp();
+        TrapezodialMotionProfile[] profiles = new TrapezodialMotionProfile[] {
+                new TrapezodialMotionProfile(constraints, new MotionProfilePosition(3, 0), initial_position),
+                new TrapezodialMotionProfile(constraints, new MotionProfilePosition(1, 0), initial_position)
+        };
+        MotionProfileTimeIndex[] indices = MotionProfileTimeIndex.Build(profiles);
+
+        double[] targets = new double[] {0.25, 0.5, 2.0};
+        double[] times = new double[profiles.length * targets.length];
+        MotionProfileTimeIndex.TimesAt(indices, targets, times);
+
+        for (int i = 0; i < profiles.length; i++) {
+            for (int j = 0; j < targets.length; j++) {
+                double t = times[i * targets.length + j];
+                if (indices[i].IsReachable(targets[j])) {
+                    Assert.assertEquals(profiles[i].Calculate(t).position, targets[j], 1e-9);
+                } else {
+                    Assert.assertTrue(Double.isNaN(t));
+                }
+            }
+        }
+        Assert.assertTrue(Double.isNaN(times[1 * targets.length + 2]));
+    }
+
+    @Test
+    public void FloatSampleDrift() {
+        initial_position = new MotionProfilePosition(0,0.5);
+        goal = new MotionProfilePosition(3, 0);
+        SetUp();
+        TrapezodialMotionProfile profile = new TrapezodialMotionProfile(constraints, goal,
+                initial_position);
+        float[] times = FloatDriftChecker.SampleTimes(profile, 0.005);
+
+        double float_drift = FloatDriftChecker.ProfileDrift(profile, times, false);
+        double double_drift = FloatDriftChecker.ProfileDrift(profile, times, true);
+        Assert.assertTrue(float_drift < 1e-5);
+        Assert.assertTrue(double_drift < 1e-6);
+    }
+
 }
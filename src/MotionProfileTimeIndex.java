@@ -0,0 +1,145 @@
+public class MotionProfileTimeIndex {
+
+    // Accel and deccel can each split in two when the velocity crosses zero,
+    // plus one cruise segment.
+    static final int kMaxSegments = 5;
+
+    double direction_;
+    int num_segments_;
+
+    // Segments are stored in the directed frame of the profile, in time order,
+    // and each one is monotone in position.
+    double[] start_time_ = new double[kMaxSegments];
+    double[] end_time_ = new double[kMaxSegments];
+    double[] start_position_ = new double[kMaxSegments];
+    double[] end_position_ = new double[kMaxSegments];
+    double[] start_velocity_ = new double[kMaxSegments];
+    double[] acceleration_ = new double[kMaxSegments];
+
+    public MotionProfileTimeIndex(TrapezodialMotionProfile profile) {
+        direction_ = profile.direction_;
+
+        double a = profile.constraints_.max_acceleration;
+        double end_accel = profile.end_accel_;
+        double end_full_speed = profile.end_full_speed_;
+        double end_deccel = profile.end_deccel_;
+
+        // The same phases as TrapezodialMotionProfile.Calculate, clipped to
+        // [0, end_deccel]
+        AddSegment(profile, 0., Math.min(end_accel, end_deccel), a);
+        AddSegment(profile, Math.max(end_accel, 0.), Math.min(end_full_speed, end_deccel), 0.);
+        AddSegment(profile, Math.max(end_full_speed, 0.), end_deccel, -a);
+    }
+
+    public static MotionProfileTimeIndex[] Build(TrapezodialMotionProfile[] profiles) {
+        MotionProfileTimeIndex[] ret = new MotionProfileTimeIndex[profiles.length];
+        for (int i = 0; i < profiles.length; i++) {
+            ret[i] = new MotionProfileTimeIndex(profiles[i]);
+        }
+        return ret;
+    }
+
+    // Splits [begin, end) at the velocity zero crossing so every stored segment
+    // is monotone in position
+    private void AddSegment(TrapezodialMotionProfile profile, double begin, double end,
+                            double acceleration) {
+        if (end <= begin) {
+            return;
+        }
+        double position = profile.PositionAt(begin);
+        double velocity = profile.VelocityAt(begin);
+
+        if (acceleration != 0.) {
+            double t_stop = begin - velocity / acceleration;
+            if (t_stop > begin && t_stop < end) {
+                PushSegment(begin, t_stop, position, velocity, acceleration);
+                double dt = t_stop - begin;
+                position += (velocity + dt * acceleration / 2.0) * dt;
+                velocity = 0.;
+                begin = t_stop;
+            }
+        }
+
+        PushSegment(begin, end, position, velocity, acceleration);
+    }
+
+    private void PushSegment(double begin, double end, double position, double velocity,
+                             double acceleration) {
+        double dt = end - begin;
+        start_time_[num_segments_] = begin;
+        end_time_[num_segments_] = end;
+        start_position_[num_segments_] = position;
+        end_position_[num_segments_] = position + (velocity + dt * acceleration / 2.0) * dt;
+        start_velocity_[num_segments_] = velocity;
+        acceleration_[num_segments_] = acceleration;
+        num_segments_++;
+    }
+
+    // Index of the first segment that passes through target, or -1 if the profile
+    // never reaches it
+    public int SegmentOf(double target) {
+        double directed_target = target * direction_;
+        for (int i = 0; i < num_segments_; i++) {
+            double lo = Math.min(start_position_[i], end_position_[i]);
+            double hi = Math.max(start_position_[i], end_position_[i]);
+            if (directed_target >= lo && directed_target <= hi) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public boolean IsReachable(double target) {
+        return SegmentOf(target) >= 0;
+    }
+
+    // Time since the start of the profile at which it first passes through target,
+    // or NaN if it never does
+    public double TimeAt(double target) {
+        int i = SegmentOf(target);
+        if (i < 0) {
+            return Double.NaN;
+        }
+
+        double dist = target * direction_ - start_position_[i];
+        double velocity = start_velocity_[i];
+        double sign = (end_position_[i] >= start_position_[i] ? 1. : -1.);
+
+        // Velocity at the target is sign * sqrt(v^2 + 2 a d); dividing the distance
+        // by the mean velocity avoids cancellation when a is small or zero.
+        double target_velocity =
+                sign * Math.sqrt(Math.max(velocity * velocity + 2 * acceleration_[i] * dist, 0.));
+        double mean_velocity = (velocity + target_velocity) / 2.0;
+
+        double dt = 0.;
+        if (mean_velocity != 0.) {
+            dt = dist / mean_velocity;
+        }
+
+        return start_time_[i] + MathUtils.Cap(dt, 0., end_time_[i] - start_time_[i]);
+    }
+
+    public void TimesAt(double[] targets, double[] times) {
+        for (int i = 0; i < targets.length; i++) {
+            times[i] = TimeAt(targets[i]);
+        }
+    }
+
+    public void Reachable(double[] targets, boolean[] reachable) {
+        for (int i = 0; i < targets.length; i++) {
+            reachable[i] = IsReachable(targets[i]);
+        }
+    }
+
+    // times is row-major, one row of targets.length entries per index
+    public static void TimesAt(MotionProfileTimeIndex[] indices, double[] targets,
+                               double[] times) {
+        for (int i = 0; i < indices.length; i++) {
+            MotionProfileTimeIndex index = indices[i];
+            int row = i * targets.length;
+            for (int j = 0; j < targets.length; j++) {
+                times[row + j] = index.TimeAt(targets[j]);
+            }
+        }
+    }
+}
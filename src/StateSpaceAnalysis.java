@@ -0,0 +1,419 @@
+import jeigen.DenseMatrix;
+import jeigen.DenseMatrixComplex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+public class StateSpaceAnalysis {
+
+    public StateSpacePlant plant_;
+    public DenseMatrix r_;
+    public int num_steps_;
+    public double dt_;
+
+    // Fraction of the step used for the rise and settling bands
+    public double rise_fraction_ = 0.9;
+    public double settle_fraction_ = 0.02;
+
+    Map<ModelKey, GainCandidate> cache_ = new ConcurrentHashMap<>();
+    Map<ModelKey, ObserverCandidate> observer_cache_ = new ConcurrentHashMap<>();
+    // Gains from PlacePoles, PlaceObserverPoles and Lqr, keyed by the kind of gain,
+    // the model and the poles or weights
+    Map<ModelKey, DenseMatrix> gain_cache_ = new ConcurrentHashMap<>();
+    static final double kControllerPoles = 0.;
+    static final double kObserverPoles = 1.;
+
+    public StateSpaceAnalysis(StateSpacePlant plant, DenseMatrix r, int num_steps, double dt) {
+        plant_ = plant;
+        r_ = r;
+        num_steps_ = num_steps;
+        dt_ = dt;
+    }
+
+    public static DenseMatrixComplex Eigenvalues(DenseMatrix M) {
+        return M.eig().values;
+    }
+
+    // Eigenvalues of A - B*K
+    public static DenseMatrixComplex ControllerEigenvalues(StateSpacePlant plant, DenseMatrix K) {
+        return Eigenvalues(plant.A_.sub(plant.B_.mmul(K)));
+    }
+
+    // Eigenvalues of A - L*C
+    public static DenseMatrixComplex ObserverEigenvalues(StateSpacePlant plant, DenseMatrix L) {
+        return Eigenvalues(plant.A_.sub(L.mmul(plant.C_)));
+    }
+
+    public static double SpectralRadius(DenseMatrixComplex eigenvalues) {
+        double ret = 0.;
+        for (int i = 0; i < eigenvalues.real().rows; i++) {
+            ret = Math.max(ret, Math.hypot(eigenvalues.getReal(i, 0), eigenvalues.getImag(i, 0)));
+        }
+        return ret;
+    }
+
+    // Discrete time, so stable means every eigenvalue is inside the unit circle
+    public static boolean IsStable(DenseMatrixComplex eigenvalues) {
+        return SpectralRadius(eigenvalues) < 1.;
+    }
+
+    // Ackermann's formula, single input only. Complex poles must be given as
+    // adjacent conjugate pairs.
+    public static DenseMatrix PlacePoles(DenseMatrix A, DenseMatrix B, double[] poles_real,
+                                         double[] poles_imag) {
+        int n = A.rows;
+        if (B.cols != 1) {
+            throw new IllegalArgumentException(
+                    "PlacePoles only supports single input plants, B has " + B.cols + " columns");
+        }
+        if (poles_real.length != n || poles_imag.length != n) {
+            throw new IllegalArgumentException(
+                    "PlacePoles needs " + n + " poles, got " + poles_real.length);
+        }
+        for (int i = 0; i < n; i++) {
+            if (poles_imag[i] != 0.) {
+                if (i + 1 >= n || poles_real[i + 1] != poles_real[i] ||
+                        poles_imag[i + 1] != -poles_imag[i]) {
+                    throw new IllegalArgumentException(
+                            "Complex pole " + i + " is not followed by its conjugate");
+                }
+                i++;
+            }
+        }
+        DenseMatrix I = DenseMatrix.eye(n);
+
+        DenseMatrix ctrb = B;
+        DenseMatrix AkB = B;
+        for (int i = 1; i < n; i++) {
+            AkB = A.mmul(AkB);
+            ctrb = ctrb.concatRight(AkB);
+        }
+
+        DenseMatrix phi = I;
+        for (int i = 0; i < n; i++) {
+            if (poles_imag[i] != 0.) {
+                double re = poles_real[i];
+                double im = poles_imag[i];
+                phi = phi.mmul(A.mmul(A).sub(A.mul(2 * re)).add(I.mul(re * re + im * im)));
+                i++;
+            } else {
+                phi = phi.mmul(A.sub(I.mul(poles_real[i])));
+            }
+        }
+
+        DenseMatrix e_n = DenseMatrix.zeros(n, 1);
+        e_n.set(n - 1, 0, 1);
+        DenseMatrix w = ctrb.t().fullPivHouseholderQRSolve(e_n);
+        return w.t().mmul(phi);
+    }
+
+    public static DenseMatrix PlacePoles(DenseMatrix A, DenseMatrix B, double[] poles) {
+        return PlacePoles(A, B, poles, new double[poles.length]);
+    }
+
+    // Ackermann's formula on the dual system, single output only: the poles of
+    // A - L*C are those of A' - C'*L'
+    public static DenseMatrix PlaceObserverPoles(DenseMatrix A, DenseMatrix C, double[] poles_real,
+                                                 double[] poles_imag) {
+        if (C.rows != 1) {
+            throw new IllegalArgumentException(
+                    "PlaceObserverPoles only supports single output plants, C has " + C.rows + " rows");
+        }
+        return PlacePoles(A.t(), C.t(), poles_real, poles_imag).t();
+    }
+
+    public static DenseMatrix PlaceObserverPoles(DenseMatrix A, DenseMatrix C, double[] poles) {
+        return PlaceObserverPoles(A, C, poles, new double[poles.length]);
+    }
+
+    // Discrete LQR by iterating the Riccati difference equation to convergence
+    public static DenseMatrix Lqr(DenseMatrix A, DenseMatrix B, DenseMatrix Q, DenseMatrix R) {
+        DenseMatrix P = MathUtils.CloneMatrix(Q);
+        DenseMatrix K = DenseMatrix.zeros(B.cols, A.rows);
+        for (int i = 0; i < 10000; i++) {
+            DenseMatrix BtP = B.t().mmul(P);
+            K = R.add(BtP.mmul(B)).fullPivHouseholderQRSolve(BtP.mmul(A));
+            DenseMatrix P_next = Q.add(A.t().mmul(P).mmul(A.sub(B.mmul(K))));
+
+            double delta = P_next.sub(P).abs().maxOverCols().maxOverRows().s();
+            P = P_next;
+            if (delta < 1e-10) {
+                break;
+            }
+        }
+        return K;
+    }
+
+    // Simulates the plant from rest under the controller and measures the step in
+    // the first output
+    public StepResponse Simulate(DenseMatrix K) {
+        StateSpacePlant plant = new StateSpacePlant(plant_.A_, plant_.B_, plant_.C_, plant_.D_);
+
+        StateSpaceController controller =
+                new StateSpaceController(plant_.B_.cols, plant_.A_.rows, plant_.C_.rows);
+        controller.K_ = K;
+        controller.A_ = plant_.A_;
+        controller.Kff_ = (plant_.B_.t().mmul(plant_.B_)).fullPivHouseholderQRSolve(plant_.B_.t());
+        controller.r_ = r_;
+
+        double goal = plant_.C_.mmul(r_).get(0, 0);
+        double start = plant.y().get(0, 0);
+        double step = goal - start;
+
+        StepResponse ret = new StepResponse();
+        ret.rise_time = Double.POSITIVE_INFINITY;
+        ret.settling_time = 0.;
+        double peak = 0.;
+        boolean settled = true;
+
+        for (int t = 0; t < num_steps_; t++) {
+            plant.Update(controller.Update(plant.x_));
+            double progress = (plant.y().get(0, 0) - start) / step;
+
+            if (Double.isNaN(progress)) {
+                ret.settling_time = Double.POSITIVE_INFINITY;
+                break;
+            }
+            if (progress >= rise_fraction_ && ret.rise_time == Double.POSITIVE_INFINITY) {
+                ret.rise_time = (t + 1) * dt_;
+            }
+            settled = Math.abs(1. - progress) <= settle_fraction_;
+            if (!settled) {
+                ret.settling_time = (t + 2) * dt_;
+            }
+            peak = Math.max(peak, progress);
+        }
+
+        // Still outside the band at the end of the horizon
+        if (!settled) {
+            ret.settling_time = Double.POSITIVE_INFINITY;
+        }
+
+        ret.overshoot = Math.max(peak - 1., 0.);
+        ret.steady_state_error = Math.abs(goal - plant.y().get(0, 0));
+        return ret;
+    }
+
+    // Runs the observer against the plant starting at r_ with a zero estimate and no
+    // input, and returns the time after which the largest state error stays within
+    // settle_fraction_ of the initial one
+    public double SimulateObserver(DenseMatrix L) {
+        StateSpacePlant plant = new StateSpacePlant(plant_.A_, plant_.B_, plant_.C_, plant_.D_,
+                MathUtils.CloneMatrix(r_));
+        StateSpaceObserver observer = new StateSpaceObserver(
+                new StateSpacePlant(plant_.A_, plant_.B_, plant_.C_, plant_.D_), L);
+        DenseMatrix u = DenseMatrix.zeros(plant_.B_.cols, 1);
+
+        double initial_error = r_.abs().maxOverCols().maxOverRows().s();
+        double convergence_time = 0.;
+        boolean converged = true;
+
+        for (int t = 0; t < num_steps_; t++) {
+            observer.Update(u, plant.y());
+            plant.Update(u);
+            double error = plant.x_.sub(observer.plant_.x_).abs().maxOverCols().maxOverRows().s();
+
+            if (Double.isNaN(error)) {
+                return Double.POSITIVE_INFINITY;
+            }
+            converged = error <= settle_fraction_ * initial_error;
+            if (!converged) {
+                convergence_time = (t + 2) * dt_;
+            }
+        }
+
+        return converged ? convergence_time : Double.POSITIVE_INFINITY;
+    }
+
+    // Unstable candidates are pruned by their eigenvalues before simulating, and
+    // results are cached against the model and gain they were computed for
+    public GainCandidate Evaluate(DenseMatrix K) {
+        ModelKey key = new ModelKey(new double[] {num_steps_, dt_, rise_fraction_, settle_fraction_},
+                plant_.A_, plant_.B_, plant_.C_, r_, K);
+        GainCandidate cached = cache_.get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        GainCandidate ret = new GainCandidate();
+        ret.K_ = K;
+        ret.eigenvalues_ = ControllerEigenvalues(plant_, K);
+        ret.spectral_radius_ = SpectralRadius(ret.eigenvalues_);
+        ret.stable_ = ret.spectral_radius_ < 1.;
+        if (ret.stable_) {
+            ret.step_response_ = Simulate(K);
+        }
+
+        cache_.put(key, ret);
+        return ret;
+    }
+
+    public List<GainCandidate> Sweep(List<DenseMatrix> gains) {
+        return gains.parallelStream().map(this::Evaluate).collect(Collectors.toList());
+    }
+
+    public List<GainCandidate> SweepPoles(List<double[]> pole_sets) {
+        return SweepPoles(pole_sets, ZeroImaginaryParts(pole_sets));
+    }
+
+    // poles_real.get(i) and poles_imag.get(i) make up one pole set, see PlacePoles
+    public List<GainCandidate> SweepPoles(List<double[]> poles_real, List<double[]> poles_imag) {
+        return IntStream.range(0, poles_real.size()).parallel()
+                .mapToObj(i -> Evaluate(CachedGain(
+                        PoleKey(kControllerPoles, poles_real.get(i), poles_imag.get(i), plant_.B_),
+                        () -> PlacePoles(plant_.A_, plant_.B_, poles_real.get(i), poles_imag.get(i)))))
+                .collect(Collectors.toList());
+    }
+
+    // Every combination of Q and R
+    public List<GainCandidate> SweepLqr(List<DenseMatrix> Qs, List<DenseMatrix> Rs) {
+        List<DenseMatrix[]> grid = new ArrayList<>();
+        for (DenseMatrix Q : Qs) {
+            for (DenseMatrix R : Rs) {
+                grid.add(new DenseMatrix[] {Q, R});
+            }
+        }
+        return grid.parallelStream()
+                .map(QR -> Evaluate(CachedGain(
+                        new ModelKey(new double[0], plant_.A_, plant_.B_, QR[0], QR[1]),
+                        () -> Lqr(plant_.A_, plant_.B_, QR[0], QR[1]))))
+                .collect(Collectors.toList());
+    }
+
+    // Same as Evaluate for the observer gain, pruned on the eigenvalues of A - L*C
+    public ObserverCandidate EvaluateObserver(DenseMatrix L) {
+        ModelKey key = new ModelKey(new double[] {num_steps_, dt_, settle_fraction_},
+                plant_.A_, plant_.B_, plant_.C_, r_, L);
+        ObserverCandidate cached = observer_cache_.get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        ObserverCandidate ret = new ObserverCandidate();
+        ret.L_ = L;
+        ret.eigenvalues_ = ObserverEigenvalues(plant_, L);
+        ret.spectral_radius_ = SpectralRadius(ret.eigenvalues_);
+        ret.stable_ = ret.spectral_radius_ < 1.;
+        ret.convergence_time_ = ret.stable_ ? SimulateObserver(L) : Double.POSITIVE_INFINITY;
+
+        observer_cache_.put(key, ret);
+        return ret;
+    }
+
+    public List<ObserverCandidate> SweepObserver(List<DenseMatrix> gains) {
+        return gains.parallelStream().map(this::EvaluateObserver).collect(Collectors.toList());
+    }
+
+    public List<ObserverCandidate> SweepObserverPoles(List<double[]> pole_sets) {
+        return SweepObserverPoles(pole_sets, ZeroImaginaryParts(pole_sets));
+    }
+
+    public List<ObserverCandidate> SweepObserverPoles(List<double[]> poles_real,
+                                                      List<double[]> poles_imag) {
+        return IntStream.range(0, poles_real.size()).parallel()
+                .mapToObj(i -> EvaluateObserver(CachedGain(
+                        PoleKey(kObserverPoles, poles_real.get(i), poles_imag.get(i), plant_.C_),
+                        () -> PlaceObserverPoles(plant_.A_, plant_.C_, poles_real.get(i),
+                                poles_imag.get(i)))))
+                .collect(Collectors.toList());
+    }
+
+    private ModelKey PoleKey(double kind, double[] poles_real, double[] poles_imag, DenseMatrix M) {
+        double[] scalars = new double[1 + poles_real.length + poles_imag.length];
+        scalars[0] = kind;
+        System.arraycopy(poles_real, 0, scalars, 1, poles_real.length);
+        System.arraycopy(poles_imag, 0, scalars, 1 + poles_real.length, poles_imag.length);
+        return new ModelKey(scalars, plant_.A_, M);
+    }
+
+    private static List<double[]> ZeroImaginaryParts(List<double[]> pole_sets) {
+        List<double[]> ret = new ArrayList<>();
+        for (double[] poles : pole_sets) {
+            ret.add(new double[poles.length]);
+        }
+        return ret;
+    }
+
+    private DenseMatrix CachedGain(ModelKey key, Supplier<DenseMatrix> compute) {
+        DenseMatrix cached = gain_cache_.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        DenseMatrix K = compute.get();
+        gain_cache_.put(key, K);
+        return K;
+    }
+
+    public static class StepResponse {
+        public double rise_time;
+        public double settling_time;
+        public double overshoot;
+        public double steady_state_error;
+    }
+
+    public static class GainCandidate {
+        public DenseMatrix K_;
+        public DenseMatrixComplex eigenvalues_;
+        public double spectral_radius_;
+        public boolean stable_;
+
+        // null when the candidate was pruned as unstable
+        public StepResponse step_response_;
+    }
+
+    public static class ObserverCandidate {
+        public DenseMatrix L_;
+        public DenseMatrixComplex eigenvalues_;
+        public double spectral_radius_;
+        public boolean stable_;
+
+        // Infinite when the candidate was pruned as unstable or never converged
+        public double convergence_time_;
+    }
+
+    // Value key over some scalars and the contents of a list of matrices
+    static class ModelKey {
+        double[] values_;
+        int hash_;
+
+        ModelKey(double[] scalars, DenseMatrix... parts) {
+            int length = 1 + scalars.length;
+            for (DenseMatrix M : parts) {
+                length += 2 + M.rows * M.cols;
+            }
+
+            values_ = new double[length];
+            int k = 0;
+            values_[k++] = scalars.length;
+            for (double v : scalars) {
+                values_[k++] = v;
+            }
+            for (DenseMatrix M : parts) {
+                values_[k++] = M.rows;
+                values_[k++] = M.cols;
+                for (int i = 0; i < M.rows; i++) {
+                    for (int j = 0; j < M.cols; j++) {
+                        values_[k++] = M.get(i, j);
+                    }
+                }
+            }
+            hash_ = Arrays.hashCode(values_);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ModelKey && Arrays.equals(values_, ((ModelKey) o).values_);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash_;
+        }
+    }
+}
@@ -4,6 +4,9 @@ public class StateSpaceObserver {
     public StateSpacePlant plant_;
     public DenseMatrix L_;
 
+    // Optional sensor health monitoring on the innovation
+    public InnovationMonitor monitor_;
+
     public StateSpaceObserver(StateSpacePlant plant, DenseMatrix L) {
         plant_ = new StateSpacePlant(MathUtils.CloneMatrix(plant.A_), MathUtils.CloneMatrix(plant.B_), MathUtils.CloneMatrix(plant.C_), MathUtils.CloneMatrix(plant.D_), MathUtils.CloneMatrix(plant.x_));
         L_ = L;
@@ -13,10 +16,16 @@ public class StateSpaceObserver {
         L_ = DenseMatrix.zeros(kNumStates, kNumOutputs);
     }
 
-    // xhat_post(n) = xhat(n) + L * (y(n) - C*xhat(n))
+    // xhat_post(n) = xhat(n) + L * W * (y(n) - C*xhat(n))
     // xhat(n+1) = A*xhat_post(n) + B*u(n) -- done in plant.Update
+    // W is the per channel weight from monitor_, identity without one
     public void Update(DenseMatrix u, DenseMatrix y) {
-        DenseMatrix x_add = plant_.x_.add(L_.mmul(y.sub(plant_.y())));
+        DenseMatrix innovation = y.sub(plant_.y());
+        if (monitor_ != null) {
+            monitor_.Update(innovation);
+            monitor_.Apply(innovation);
+        }
+        DenseMatrix x_add = plant_.x_.add(L_.mmul(innovation));
         plant_.x_ = x_add;
         plant_.Update(u);
     }
@@ -1,7 +1,17 @@
 import jeigen.DenseMatrix;
+import jeigen.DenseMatrixComplex;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
 import javax.swing.plaf.nimbus.State;
 
 public class StateSpaceTest {
@@ -304,6 +314,432 @@ public class StateSpaceTest {
         Assert.assertEquals(plant.x_.get(0, 0), observer.plant_.x_.get(0, 0), 0.01);
         Assert.assertEquals(plant.x_.get(1, 0), observer.plant_.x_.get(1, 0), 0.1);
     }
+
+    // Ensure the off-heap fleet kernels match the DenseMatrix plant, controller and
+    // observer, and that a restored snapshot replays the same trajectory
+    @Test
+    @SuppressWarnings("Duplicates")
+    public void testFleetMatchesPlant() {
+        StateSpacePlant plant = new StateSpacePlant(1, 2, 1);
+        plant.A_ = new DenseMatrix("1 9.9502e-3; 0 9.9005e-1");
+        plant.B_ = new DenseMatrix("4.9834e-5; 9.9502e-3");
+        plant.C_ = new DenseMatrix("1 0");
+        plant.x_ = new DenseMatrix("0; 0");
+
+        StateSpaceController controller = new StateSpaceController(1, 2, 1);
+        controller.K_ = new DenseMatrix("10.0 1.0");
+        controller.A_ = MathUtils.CloneMatrix(plant.A_);
+        controller.Kff_ = (plant.B_.t().mmul(plant.B_)).recpr().mmul(plant.B_.t());
+        controller.r_ = new DenseMatrix("2.0; 0.0");
+        controller.u_max_ = new DenseMatrix("12");
+        controller.u_min_ = new DenseMatrix("-12");
+
+        DenseMatrix L = new DenseMatrix("1e-1; 1");
+        StateSpaceObserver observer = new StateSpaceObserver(plant, L);
+
+        FleetStateStore fleet = new FleetStateStore(plant, 3);
+        fleet.SetObserverGain(L);
+        fleet.SetController(controller);
+        for (int n = 0; n < 3; n++) {
+            fleet.SetReference(n, controller.r_);
+        }
+
+        plant.x_.set(0, 0, 1);
+        fleet.SetState(1, plant.x_);
+
+        DoubleBuffer checkpoint = null;
+        for (int t = 0; t < 500; t++) {
+            if (t == 250) {
+                checkpoint = fleet.Snapshot();
+            }
+
+            DenseMatrix u = controller.Update(observer.plant_.x_);
+            plant.Update(u);
+            observer.Update(u, plant.y());
+
+            fleet.UpdateControllers();
+            fleet.UpdatePlants();
+            fleet.UpdateObservers();
+        }
+
+        for (int i = 0; i < 2; i++) {
+            Assert.assertEquals(plant.x_.get(i, 0), fleet.GetState(1, i), 1e-9);
+            Assert.assertEquals(observer.plant_.x_.get(i, 0), fleet.GetEstimate(1, i), 1e-9);
+            Assert.assertEquals(fleet.GetState(0, i), fleet.GetState(2, i), 1e-12);
+        }
+
+        double final_state = fleet.GetState(1, 0);
+        fleet.Restore(checkpoint);
+        for (int t = 250; t < 500; t++) {
+            fleet.UpdateControllers();
+            fleet.UpdatePlants();
+            fleet.UpdateObservers();
+        }
+        Assert.assertEquals(final_state, fleet.GetState(1, 0), 1e-12);
+
+        FleetStateStore smaller = new FleetStateStore(plant, 2);
+        try {
+            fleet.Restore(smaller.Snapshot());
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // Expected, snapshot from a store of a different size
+        }
+        try {
+            smaller.Snapshot(checkpoint);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // Expected, snapshot buffer of a different size
+        }
+    }
+
+    // Ensure placed poles show up as the closed-loop eigenvalues, that unstable gains
+    // are pruned before simulation and that stable ones reach the goal
+    @Test
+    public void testAnalysisSweep() {
+        StateSpacePlant plant = new StateSpacePlant(1, 2, 1);
+        plant.A_ = new DenseMatrix("1 9.9502e-3; 0 9.9005e-1");
+        plant.B_ = new DenseMatrix("4.9834e-5; 9.9502e-3");
+        plant.C_ = new DenseMatrix("1 0");
+
+        DenseMatrix K = StateSpaceAnalysis.PlacePoles(plant.A_, plant.B_, new double[] {0.9, 0.95});
+        DenseMatrixComplex poles = StateSpaceAnalysis.ControllerEigenvalues(plant, K);
+        double p0 = Math.min(poles.getReal(0, 0), poles.getReal(1, 0));
+        double p1 = Math.max(poles.getReal(0, 0), poles.getReal(1, 0));
+        Assert.assertEquals(0.9, p0, 1e-6);
+        Assert.assertEquals(0.95, p1, 1e-6);
+
+        Assert.assertTrue(StateSpaceAnalysis.IsStable(
+                StateSpaceAnalysis.ObserverEigenvalues(plant, new DenseMatrix("1e-1; 1"))));
+
+        StateSpaceAnalysis analysis = new StateSpaceAnalysis(plant, new DenseMatrix("1; 0"), 1000, 0.01);
+        List<StateSpaceAnalysis.GainCandidate> candidates = analysis.Sweep(Arrays.asList(
+                K, new DenseMatrix("-10.0 0.0"), new DenseMatrix("10.0 1.0")));
+
+        Assert.assertTrue(candidates.get(0).stable_);
+        Assert.assertEquals(0., candidates.get(0).step_response_.steady_state_error, 1e-3);
+        Assert.assertFalse(candidates.get(1).stable_);
+        Assert.assertNull(candidates.get(1).step_response_);
+        Assert.assertTrue(candidates.get(2).stable_);
+        Assert.assertTrue(candidates.get(2).step_response_.rise_time
+                < candidates.get(2).step_response_.settling_time);
+
+        // Same model and gain come back from the cache
+        Assert.assertSame(candidates.get(0), analysis.Evaluate(MathUtils.CloneMatrix(K)));
+
+        List<StateSpaceAnalysis.GainCandidate> lqr = analysis.SweepLqr(
+                Arrays.asList(new DenseMatrix("1 0; 0 0"), new DenseMatrix("100 0; 0 1")),
+                Arrays.asList(new DenseMatrix("1"), new DenseMatrix("0.01")));
+        Assert.assertEquals(4, lqr.size());
+        for (StateSpaceAnalysis.GainCandidate candidate : lqr) {
+            Assert.assertTrue(candidate.stable_);
+        }
+    }
+
+    // Ensure the analysis rejects inputs Ackermann can't handle, recomputes when the
+    // metric bands change, reuses placed gains and flags responses that never settle
+    @Test
+    public void testAnalysisEdgeCases() {
+        StateSpacePlant plant = new StateSpacePlant(1, 2, 1);
+        plant.A_ = new DenseMatrix("1 9.9502e-3; 0 9.9005e-1");
+        plant.B_ = new DenseMatrix("4.9834e-5; 9.9502e-3");
+        plant.C_ = new DenseMatrix("1 0");
+
+        try {
+            StateSpaceAnalysis.PlacePoles(plant.A_, new DenseMatrix("1 0; 0 1"), new double[] {0.9, 0.95});
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // Expected, multiple inputs
+        }
+        try {
+            StateSpaceAnalysis.PlacePoles(plant.A_, plant.B_, new double[] {0.9, 0.9},
+                    new double[] {0.1, 0.1});
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // Expected, not a conjugate pair
+        }
+        DenseMatrix K = StateSpaceAnalysis.PlacePoles(plant.A_, plant.B_, new double[] {0.9, 0.9},
+                new double[] {0.1, -0.1});
+        DenseMatrixComplex poles = StateSpaceAnalysis.ControllerEigenvalues(plant, K);
+        Assert.assertEquals(0.9, poles.getReal(0, 0), 1e-6);
+        Assert.assertEquals(0.1, Math.abs(poles.getImag(0, 0)), 1e-6);
+
+        StateSpaceAnalysis analysis = new StateSpaceAnalysis(plant, new DenseMatrix("1; 0"), 1000, 0.01);
+        DenseMatrix gain = new DenseMatrix("10.0 1.0");
+        double rise_90 = analysis.Evaluate(gain).step_response_.rise_time;
+        analysis.rise_fraction_ = 0.5;
+        double rise_50 = analysis.Evaluate(gain).step_response_.rise_time;
+        Assert.assertTrue(rise_50 < rise_90);
+
+        List<double[]> pole_sets = Arrays.asList(new double[] {0.9, 0.95}, new double[] {0.8, 0.85});
+        List<StateSpaceAnalysis.GainCandidate> first = analysis.SweepPoles(pole_sets);
+        List<StateSpaceAnalysis.GainCandidate> second = analysis.SweepPoles(pole_sets);
+        Assert.assertSame(first.get(0).K_, second.get(0).K_);
+        Assert.assertSame(first.get(1), second.get(1));
+
+        StateSpaceAnalysis short_horizon = new StateSpaceAnalysis(plant, new DenseMatrix("1; 0"), 20, 0.01);
+        StateSpaceAnalysis.StepResponse response = short_horizon.Evaluate(gain).step_response_;
+        Assert.assertEquals(Double.POSITIVE_INFINITY, response.rise_time, 0.);
+        Assert.assertEquals(Double.POSITIVE_INFINITY, response.settling_time, 0.);
+
+        // Complex pole sets are cached apart from real ones with the same real parts
+        List<StateSpaceAnalysis.GainCandidate> complex = analysis.SweepPoles(
+                Arrays.asList(new double[] {0.9, 0.95}, new double[] {0.9, 0.9}),
+                Arrays.asList(new double[] {0., 0.}, new double[] {0.1, -0.1}));
+        Assert.assertSame(first.get(0).K_, complex.get(0).K_);
+        DenseMatrixComplex complex_poles = complex.get(1).eigenvalues_;
+        Assert.assertEquals(0.1, Math.abs(complex_poles.getImag(0, 0)), 1e-6);
+        Assert.assertNotSame(analysis.SweepPoles(Arrays.asList(new double[] {0.9, 0.9})).get(0).K_,
+                complex.get(1).K_);
+    }
+
+    // Ensure observer gains are placed on the dual system, pruned on A - L*C and
+    // ranked by how fast the estimate converges
+    @Test
+    public void testAnalysisObserverSweep() {
+        StateSpacePlant plant = new StateSpacePlant(1, 2, 1);
+        plant.A_ = new DenseMatrix("1 9.9502e-3; 0 9.9005e-1");
+        plant.B_ = new DenseMatrix("4.9834e-5; 9.9502e-3");
+        plant.C_ = new DenseMatrix("1 0");
+
+        DenseMatrix L = StateSpaceAnalysis.PlaceObserverPoles(plant.A_, plant.C_, new double[] {0.5, 0.6});
+        DenseMatrixComplex poles = StateSpaceAnalysis.ObserverEigenvalues(plant, L);
+        Assert.assertEquals(0.5, Math.min(poles.getReal(0, 0), poles.getReal(1, 0)), 1e-6);
+        Assert.assertEquals(0.6, Math.max(poles.getReal(0, 0), poles.getReal(1, 0)), 1e-6);
+        try {
+            StateSpaceAnalysis.PlaceObserverPoles(plant.A_, DenseMatrix.eye(2), new double[] {0.5, 0.6});
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // Expected, multiple outputs
+        }
+
+        StateSpaceAnalysis analysis = new StateSpaceAnalysis(plant, new DenseMatrix("1; 1"), 1000, 0.01);
+        List<StateSpaceAnalysis.ObserverCandidate> candidates = analysis.SweepObserver(Arrays.asList(
+                L, new DenseMatrix("-1; -10"), new DenseMatrix("1e-1; 1")));
+        Assert.assertTrue(candidates.get(0).stable_);
+        Assert.assertFalse(candidates.get(1).stable_);
+        Assert.assertEquals(Double.POSITIVE_INFINITY, candidates.get(1).convergence_time_, 0.);
+        Assert.assertTrue(candidates.get(2).stable_);
+        Assert.assertTrue(candidates.get(0).convergence_time_ < candidates.get(2).convergence_time_);
+        Assert.assertSame(candidates.get(0), analysis.EvaluateObserver(MathUtils.CloneMatrix(L)));
+
+        List<StateSpaceAnalysis.ObserverCandidate> placed = analysis.SweepObserverPoles(
+                Arrays.asList(new double[] {0.5, 0.6}, new double[] {0.7, 0.7}),
+                Arrays.asList(new double[] {0., 0.}, new double[] {0.2, -0.2}));
+        Assert.assertTrue(placed.get(0).stable_);
+        Assert.assertEquals(candidates.get(0).convergence_time_, placed.get(0).convergence_time_, 1e-9);
+        Assert.assertEquals(0.2, Math.abs(placed.get(1).eigenvalues_.getImag(0, 0)), 1e-6);
+        Assert.assertSame(placed.get(1).L_, analysis.SweepObserverPoles(
+                Arrays.asList(new double[] {0.7, 0.7}), Arrays.asList(new double[] {0.2, -0.2})).get(0).L_);
+
+        // Controller and observer gains for the same poles don't share a cache entry
+        Assert.assertNotSame(placed.get(0).L_,
+                analysis.SweepPoles(Arrays.asList(new double[] {0.5, 0.6})).get(0).K_);
+    }
+
+    // Ensure the float plant batch stays close to the double path on a stable plant
+    @Test
+    public void testFloatPlantDrift() {
+        DenseMatrix A = new DenseMatrix("1.0 .01; -.05 .95");
+        StateSpacePlant plant = new StateSpacePlant(A, new DenseMatrix("1e-5; 0.02"),
+                new DenseMatrix("1 0"));
+
+        DenseMatrix[] x_0 = new DenseMatrix[] {new DenseMatrix("1; 1"), new DenseMatrix("-3; 0.5")};
+        DenseMatrix[] u = new DenseMatrix[] {new DenseMatrix("0"), new DenseMatrix("1")};
+
+        double float_drift = FloatDriftChecker.PlantDrift(plant, x_0, u, 2000, false);
+        double double_drift = FloatDriftChecker.PlantDrift(plant, x_0, u, 2000, true);
+        Assert.assertTrue(float_drift < 1e-4);
+        // Only the float storage of the state is left to drift
+        Assert.assertTrue(double_drift < 5e-6);
+        Assert.assertTrue(double_drift <= float_drift);
+    }
+
+    // Ensure a sensor that drops out is flagged within a few ticks, reported off the
+    // control thread and excluded so the observer keeps tracking on the other sensor
+    @Test
+    @SuppressWarnings("Duplicates")
+    public void testObserverSensorFault() throws InterruptedException {
+        StateSpacePlant plant = new StateSpacePlant(1, 2, 2);
+        plant.A_ = new DenseMatrix("1 9.9502e-3; 0 9.9005e-1");
+        plant.B_ = new DenseMatrix("4.9834e-5; 9.9502e-3");
+        plant.C_ = DenseMatrix.eye(2);
+        plant.x_ = new DenseMatrix("0; 0");
+
+        DenseMatrix L = new DenseMatrix("2e-1 0; 1 0.5");
+        StateSpaceObserver observer = new StateSpaceObserver(plant, L);
+        observer.monitor_ = new InnovationMonitor(2);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        CountDownLatch reported = new CountDownLatch(1);
+        Thread control_thread = Thread.currentThread();
+        boolean[] off_control_thread = new boolean[1];
+        observer.monitor_.SetListener((channel, faulty, nis, cusum) -> {
+            if (channel == 1 && faulty) {
+                off_control_thread[0] = Thread.currentThread() != control_thread;
+                reported.countDown();
+            }
+        }, executor);
+
+        Random noise = new Random(0);
+        int fault_tick = -1;
+        for (int t = 0; t < 1000; t++) {
+            DenseMatrix u = new DenseMatrix("1.0");
+            DenseMatrix y = plant.y().add(new DenseMatrix(new double[][] {
+                    {1e-3 * noise.nextGaussian()}, {1e-2 * noise.nextGaussian()}}));
+            if (t >= 500) {
+                // Velocity sensor disconnected
+                y.set(1, 0, 0);
+            }
+
+            observer.Update(u, y);
+            plant.Update(u);
+
+            if (fault_tick < 0 && observer.monitor_.faulty_[1]) {
+                fault_tick = t;
+            }
+        }
+
+        Assert.assertTrue(fault_tick >= 500 && fault_tick < 505);
+        Assert.assertFalse(observer.monitor_.faulty_[0]);
+        Assert.assertEquals(0., observer.monitor_.weight_[1], 0.);
+
+        Assert.assertTrue(reported.await(1, TimeUnit.SECONDS));
+        Assert.assertTrue(off_control_thread[0]);
+        executor.shutdown();
+
+        Assert.assertEquals(plant.x_.get(0, 0), observer.plant_.x_.get(0, 0), 0.01);
+        Assert.assertEquals(plant.x_.get(1, 0), observer.plant_.x_.get(1, 0), 0.1);
+    }
+
+    // Ensure a sensor that jumps is excluded and stays excluded by default, with
+    // the estimate coasting on the model, and that with probing enabled the
+    // estimate is pulled back and the channel recovers
+    @Test
+    @SuppressWarnings("Duplicates")
+    public void testObserverReconvergeAfterJump() {
+        for (double readmit_weight : new double[] {0., 0.5}) {
+            StateSpacePlant plant = new StateSpacePlant(1, 2, 1);
+            plant.A_ = new DenseMatrix("1 9.9502e-3; 0 9.9005e-1");
+            plant.B_ = new DenseMatrix("4.9834e-5; 9.9502e-3");
+            plant.C_ = new DenseMatrix("1 0");
+            plant.x_ = new DenseMatrix("0; 0");
+
+            DenseMatrix L = new DenseMatrix("1e-1; 1");
+            StateSpaceObserver observer = new StateSpaceObserver(plant, L);
+            observer.monitor_ = new InnovationMonitor(1);
+            observer.monitor_.readmit_weight_ = readmit_weight;
+
+            Random noise = new Random(1);
+            boolean flagged = false;
+            for (int t = 0; t < 3000; t++) {
+                if (t == 500) {
+                    plant.x_.set(0, 0, plant.x_.get(0, 0) + 0.05);
+                }
+                DenseMatrix u = new DenseMatrix("1.0");
+                DenseMatrix y = plant.y().add(new DenseMatrix(new double[][] {{1e-3 * noise.nextGaussian()}}));
+
+                observer.Update(u, y);
+                plant.Update(u);
+
+                flagged |= observer.monitor_.faulty_[0];
+                if (observer.monitor_.faulty_[0] && !observer.monitor_.IsProbing(0)) {
+                    Assert.assertEquals(0., observer.monitor_.weight_[0], 0.);
+                }
+            }
+
+            Assert.assertTrue(flagged);
+            double error = plant.x_.get(0, 0) - observer.plant_.x_.get(0, 0);
+            if (readmit_weight == 0.) {
+                Assert.assertTrue(observer.monitor_.faulty_[0]);
+                Assert.assertEquals(0.05, error, 0.01);
+            } else {
+                Assert.assertFalse(observer.monitor_.faulty_[0]);
+                Assert.assertEquals(1., observer.monitor_.weight_[0], 0.);
+                Assert.assertEquals(0., error, 0.005);
+            }
+        }
+    }
+
+    // Ensure the constant innovation bias of a model that is slightly off counts as
+    // settled rather than as a fault, with or without noise, and that a sensor
+    // dropping out is still flagged straight away
+    @Test
+    @SuppressWarnings("Duplicates")
+    public void testObserverMonitorModelError() {
+        for (double sigma : new double[] {1e-4, 0.}) {
+            StateSpacePlant plant = new StateSpacePlant(1, 2, 1);
+            plant.A_ = new DenseMatrix("1 9.9502e-3; 0 9.9005e-1");
+            plant.B_ = new DenseMatrix("4.9834e-5; 9.9502e-3");
+            plant.C_ = new DenseMatrix("1 0");
+            plant.x_ = new DenseMatrix("0; 0");
+
+            StateSpacePlant model = new StateSpacePlant(MathUtils.CloneMatrix(plant.A_), plant.B_, plant.C_);
+            model.A_.set(0, 1, model.A_.get(0, 1) * 0.995);
+            model.A_.set(1, 1, model.A_.get(1, 1) * 0.985);
+            StateSpaceObserver observer = new StateSpaceObserver(model, new DenseMatrix("0.2; 10"));
+            observer.monitor_ = new InnovationMonitor(1);
+
+            Random noise = new Random(0);
+            for (int t = 0; t < 3000; t++) {
+                if (t == 2500) {
+                    plant.C_ = new DenseMatrix("0 0");
+                }
+                DenseMatrix u = new DenseMatrix("1.0");
+                DenseMatrix y = plant.y().add(new DenseMatrix(new double[][] {{sigma * noise.nextGaussian()}}));
+
+                observer.Update(u, y);
+                plant.Update(u);
+
+                if (t < 2500) {
+                    Assert.assertFalse(observer.monitor_.faulty_[0]);
+                } else if (t >= 2505) {
+                    Assert.assertTrue(observer.monitor_.faulty_[0]);
+                }
+            }
+            Assert.assertTrue(observer.monitor_.count_[0] >= observer.monitor_.warmup_);
+        }
+    }
+
+    // Ensure the observer's initial convergence doesn't leak into the learned
+    // innovation variance, and that a rejected notification can't break Update
+    @Test
+    @SuppressWarnings("Duplicates")
+    public void testObserverMonitorBaseline() {
+        StateSpacePlant plant = new StateSpacePlant(1, 2, 1);
+        plant.A_ = new DenseMatrix("1 9.9502e-3; 0 9.9005e-1");
+        plant.B_ = new DenseMatrix("4.9834e-5; 9.9502e-3");
+        plant.C_ = new DenseMatrix("1 0");
+        plant.x_ = new DenseMatrix("0; 0");
+
+        DenseMatrix L = new DenseMatrix("1e-1; 1");
+        StateSpaceObserver observer = new StateSpaceObserver(plant, L);
+        observer.monitor_ = new InnovationMonitor(1);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+        observer.monitor_.SetListener((channel, faulty, nis, cusum) -> { }, executor);
+
+        plant.x_.set(0, 0, 0.5);
+
+        Random noise = new Random(1);
+        for (int t = 0; t < 600; t++) {
+            if (t == 500) {
+                // Sensor drops out, reported to an executor that rejects it
+                plant.C_ = new DenseMatrix("0 0");
+            }
+            DenseMatrix u = new DenseMatrix("1.0");
+            DenseMatrix y = plant.y().add(new DenseMatrix(new double[][] {{1e-3 * noise.nextGaussian()}}));
+
+            observer.Update(u, y);
+            plant.Update(u);
+
+            if (t == 499) {
+                Assert.assertEquals(1e-3, Math.sqrt(observer.monitor_.Variance(0)), 3e-4);
+            }
+        }
+
+        Assert.assertTrue(observer.monitor_.faulty_[0]);
+    }
 }
 
 
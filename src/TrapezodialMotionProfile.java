@@ -49,31 +49,86 @@ public class TrapezodialMotionProfile {
     }
 
     public MotionProfilePosition Calculate(double t) {
-        MotionProfilePosition result = new MotionProfilePosition(initial_.position, initial_.velocity);
+        return Direct(new MotionProfilePosition(PositionAt(t), VelocityAt(t)));
+    }
 
+    // Position and velocity at t before Direct is applied, shared by Calculate,
+    // the double path of Sample and MotionProfileTimeIndex
+    double PositionAt(double t) {
+        double a = constraints_.max_acceleration;
         if (t < end_accel_) {
-            result.velocity += t * constraints_.max_acceleration;
-            result.position +=
-                    (initial_.velocity + t * constraints_.max_acceleration / 2.0) * t;
+            return initial_.position + (initial_.velocity + t * a / 2.0) * t;
         } else if (t < end_full_speed_) {
-            result.velocity = constraints_.max_velocity;
-            result.position +=
-                    (initial_.velocity + end_accel_ * constraints_.max_acceleration / 2.0) *
-                            end_accel_ +
-                            constraints_.max_velocity * (t - end_accel_);
+            return initial_.position + (initial_.velocity + end_accel_ * a / 2.0) * end_accel_ +
+                    constraints_.max_velocity * (t - end_accel_);
         } else if (t <= end_deccel_) {
-            result.velocity =
-                    goal_.velocity + (end_deccel_ - t) * constraints_.max_acceleration;
             double time_left = end_deccel_ - t;
-            result.position =
-                    goal_.position -
-                            (goal_.velocity + time_left * constraints_.max_acceleration / 2.0) *
-                                    time_left;
-        } else {
-            result = goal_;
+            return goal_.position - (goal_.velocity + time_left * a / 2.0) * time_left;
         }
+        return goal_.position;
+    }
 
-        return Direct(result);
+    double VelocityAt(double t) {
+        if (t < end_accel_) {
+            return initial_.velocity + t * constraints_.max_acceleration;
+        } else if (t < end_full_speed_) {
+            return constraints_.max_velocity;
+        } else if (t <= end_deccel_) {
+            return goal_.velocity + (end_deccel_ - t) * constraints_.max_acceleration;
+        }
+        return goal_.velocity;
+    }
+
+    // Batch version of Calculate with float storage for the samples. The profile
+    // is evaluated in float unless accumulate_double is set.
+    public void Sample(float[] times, float[] positions, float[] velocities,
+                       boolean accumulate_double) {
+        if (accumulate_double) {
+            SampleDouble(times, positions, velocities);
+            return;
+        }
+
+        float direction = (float) direction_;
+        float a = (float) constraints_.max_acceleration;
+        float max_velocity = (float) constraints_.max_velocity;
+        float initial_position = (float) initial_.position;
+        float initial_velocity = (float) initial_.velocity;
+        float goal_position = (float) goal_.position;
+        float goal_velocity = (float) goal_.velocity;
+        float end_accel = (float) end_accel_;
+        float end_full_speed = (float) end_full_speed_;
+        float end_deccel = (float) end_deccel_;
+        float full_speed_position = initial_position +
+                (initial_velocity + end_accel * a / 2.0f) * end_accel;
+
+        for (int i = 0; i < times.length; i++) {
+            float t = times[i];
+            float position;
+            float velocity;
+            if (t < end_accel) {
+                velocity = initial_velocity + t * a;
+                position = initial_position + (initial_velocity + t * a / 2.0f) * t;
+            } else if (t < end_full_speed) {
+                velocity = max_velocity;
+                position = full_speed_position + max_velocity * (t - end_accel);
+            } else if (t <= end_deccel) {
+                float time_left = end_deccel - t;
+                velocity = goal_velocity + time_left * a;
+                position = goal_position - (goal_velocity + time_left * a / 2.0f) * time_left;
+            } else {
+                velocity = goal_velocity;
+                position = goal_position;
+            }
+            positions[i] = position * direction;
+            velocities[i] = velocity * direction;
+        }
+    }
+
+    private void SampleDouble(float[] times, float[] positions, float[] velocities) {
+        for (int i = 0; i < times.length; i++) {
+            positions[i] = (float) (PositionAt(times[i]) * direction_);
+            velocities[i] = (float) (VelocityAt(times[i]) * direction_);
+        }
     }
 
     public double total_time() {